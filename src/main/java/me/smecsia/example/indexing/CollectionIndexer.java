@@ -0,0 +1,400 @@
+package me.smecsia.example.indexing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import me.smecsia.example.model.IndexingStats;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+
+/**
+ * Applies the oplog operations of a single collection to the elasticsearch index in bulks
+ *
+ * @author smecsia
+ */
+public class CollectionIndexer {
+
+    public static final String ID_FIELD = "_id";
+    public static final int THROUGHPUT_WINDOW_SEC = 10;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Client client;
+    private final DBCollection collection;
+    private final String indexName;
+    private final String type;
+    private final int bulkSize;
+    private final long bulkTimeoutMs;
+    private final long actionTimeoutMs;
+    private final long startedAt = System.currentTimeMillis();
+    private BulkRequestBuilder bulk;
+    private BSONTimestamp pendingPosition;
+    private BSONTimestamp indexedPosition;
+    private long oldestPendingMs;
+    private long bulkStartedMs;
+    private long documentsIndexed;
+    private long documentsDeleted;
+    private long documentsSkipped;
+    // operations counted per second over the last throughput window, each slot is reused every window
+    private final long[] windowSeconds = new long[THROUGHPUT_WINDOW_SEC];
+    private final long[] windowOperations = new long[THROUGHPUT_WINDOW_SEC];
+    private final ContentHashStore hashes = new ContentHashStore();
+    private Set<String> indexedFields;
+    private final List<DBObject> importBuffer = new ArrayList<>();
+    private boolean importing;
+    private volatile boolean importAborted;
+    private long importStartedMs;
+
+    public CollectionIndexer(Client client, DBCollection collection, String indexName,
+                             int bulkSize, long bulkTimeoutMs, long actionTimeoutMs) {
+        this.client = client;
+        this.collection = collection;
+        this.indexName = indexName;
+        this.type = collection.getName();
+        this.bulkSize = bulkSize;
+        this.bulkTimeoutMs = bulkTimeoutMs;
+        this.actionTimeoutMs = actionTimeoutMs;
+        this.bulk = client.prepareBulk();
+    }
+
+    public String getCollectionName() {
+        return type;
+    }
+
+    /**
+     * Restricts the indexed fields of the documents, so the changes of the other fields are not re-indexed
+     */
+    public synchronized void setIndexedFields(Collection<String> fields) {
+        this.indexedFields = (fields == null || fields.isEmpty()) ? null : new HashSet<>(fields);
+    }
+
+    /**
+     * Indexes all the documents currently stored within the collection.
+     * The import uses its own bulks and does not hold the indexer's lock, so it does not block the oplog reader:
+     * the entries arriving meanwhile are buffered and applied once the import is over.
+     * When the import is aborted, the buffered entries are dropped and nothing is applied any more.
+     */
+    public void importAll() {
+        synchronized (this) {
+            importing = true;
+            importStartedMs = System.currentTimeMillis();
+        }
+        logger.debug(format("Importing all documents of collection '%s' into index '%s'...", type, indexName));
+        final DBCursor cursor = collection.find();
+        try {
+            BulkRequestBuilder importBulk = client.prepareBulk();
+            while (!importAborted && cursor.hasNext()) {
+                final DBObject document = cursor.next();
+                final IndexRequestBuilder request;
+                synchronized (this) {
+                    request = prepareIndex(document);
+                }
+                if (request != null) {
+                    importBulk.add(request);
+                }
+                if (importBulk.numberOfActions() >= bulkSize) {
+                    execute(importBulk);
+                    importBulk = client.prepareBulk();
+                }
+            }
+            if (importBulk.numberOfActions() > 0) {
+                execute(importBulk);
+            }
+        } finally {
+            cursor.close();
+            synchronized (this) {
+                try {
+                    if (importAborted) {
+                        logger.warn(format("Import of collection '%s' is aborted, %d buffered writes are not indexed",
+                                type, importBuffer.size()));
+                    } else {
+                        for (DBObject entry : importBuffer) {
+                            applyEntry(entry);
+                        }
+                    }
+                } finally {
+                    importBuffer.clear();
+                    importing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the running import to complete
+     *
+     * @return true if no import is running
+     */
+    public synchronized boolean awaitImport(long timeoutMs) {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (importing) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !importing;
+    }
+
+    /**
+     * Stops the running import and any further indexing of the collection, so that nothing touches
+     * the MongoDB client once it is closed. The indexed position of the collection stays where it was.
+     */
+    public void abortImport() {
+        importAborted = true;
+    }
+
+    /**
+     * Applies the single oplog entry belonging to this collection
+     */
+    public synchronized void apply(DBObject entry) {
+        if (importAborted) {
+            return;
+        }
+        if (importing) {
+            importBuffer.add(entry);
+        } else {
+            applyEntry(entry);
+        }
+    }
+
+    /**
+     * Removes all the indexed documents of the collection (e.g. when it is dropped)
+     */
+    public synchronized void clear() {
+        flush();
+        hashes.clear();
+        client.prepareDeleteByQuery(indexName).setTypes(type).setQuery(matchAllQuery())
+                .execute().actionGet(actionTimeoutMs);
+    }
+
+    public synchronized void flushIfDue() {
+        if (bulk.numberOfActions() > 0 && System.currentTimeMillis() - bulkStartedMs >= bulkTimeoutMs) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        flush(actionTimeoutMs);
+    }
+
+    /**
+     * Flushes the pending bulk waiting for its completion not longer than the timeout
+     */
+    public synchronized void flush(long timeoutMs) {
+        if (bulk.numberOfActions() > 0) {
+            execute(bulk, timeoutMs);
+            bulk = client.prepareBulk();
+        }
+        if (pendingPosition != null) {
+            indexedPosition = pendingPosition;
+        }
+        oldestPendingMs = 0;
+    }
+
+    /**
+     * The oplog position up to which all the entries of the collection are indexed
+     *
+     * @param readerPosition the position of the oplog reader, all the entries before it are dispatched
+     */
+    public synchronized BSONTimestamp indexedUpTo(BSONTimestamp readerPosition) {
+        return (importing || importAborted || bulk.numberOfActions() > 0 || pendingPosition != indexedPosition) ?
+                indexedPosition : readerPosition;
+    }
+
+    /**
+     * @param readerPosition the position of the oplog reader
+     * @param unread         the position of the first oplog entry not read yet, or null if the reader is caught up
+     */
+    public synchronized IndexingStats stats(BSONTimestamp readerPosition, BSONTimestamp unread) {
+        final long now = System.currentTimeMillis();
+        long lag = 0;
+        if (importing) {
+            lag = now - importStartedMs;
+        } else if (oldestPendingMs > 0) {
+            lag = now - oldestPendingMs;
+        }
+        if (unread != null) {
+            // the oldest write that is not even read yet
+            lag = Math.max(lag, now - timestampMillis(unread));
+        }
+        return new IndexingStats(type, documentsIndexed, documentsDeleted, documentsSkipped,
+                bulk.numberOfActions() + importBuffer.size(), Math.max(0, lag),
+                recentThroughput(now), indexedUpTo(readerPosition));
+    }
+
+    private void applyEntry(DBObject entry) {
+        final String op = (String) entry.get("op");
+        final DBObject object = (DBObject) entry.get("o");
+        switch (op) {
+            case "i":
+                index(object);
+                break;
+            case "u":
+                // the update entry may contain only the modifiers, so the actual state is fetched
+                final Object id = ((DBObject) entry.get("o2")).get(ID_FIELD);
+                final DBObject current = collection.findOne(new BasicDBObject(ID_FIELD, id));
+                if (current != null) {
+                    index(current);
+                } else {
+                    delete(id);
+                }
+                break;
+            case "d":
+                delete(object.get(ID_FIELD));
+                break;
+            default:
+                logger.debug(format("Ignoring oplog operation '%s' for collection '%s'", op, type));
+                return;
+        }
+        if (oldestPendingMs == 0) {
+            oldestPendingMs = timestampMillis((BSONTimestamp) entry.get("ts"));
+        }
+        pendingPosition = (BSONTimestamp) entry.get("ts");
+        if (bulk.numberOfActions() >= bulkSize) {
+            flush();
+        }
+    }
+
+    private void execute(BulkRequestBuilder request) {
+        execute(request, actionTimeoutMs);
+    }
+
+    private void execute(BulkRequestBuilder request, long timeoutMs) {
+        final BulkResponse response = request.execute().actionGet(timeoutMs);
+        if (response.hasFailures()) {
+            logger.error(format("Failed to index some documents of collection '%s': %s",
+                    type, response.buildFailureMessage()));
+        }
+        // only the items that have actually succeeded are counted
+        synchronized (this) {
+            for (BulkItemResponse item : response) {
+                if (item.isFailed()) {
+                    // so that the next write of the same content is not skipped
+                    hashes.remove(item.getId());
+                } else if ("delete".equals(item.getOpType())) {
+                    documentsDeleted++;
+                    countOperation();
+                } else {
+                    documentsIndexed++;
+                    countOperation();
+                }
+            }
+        }
+    }
+
+    private void index(DBObject document) {
+        final IndexRequestBuilder request = prepareIndex(document);
+        if (request != null) {
+            startBulk();
+            bulk.add(request);
+        }
+    }
+
+    /**
+     * @return the index request or null if the indexed content of the document has not changed
+     */
+    private IndexRequestBuilder prepareIndex(DBObject document) {
+        final String id = document.get(ID_FIELD).toString();
+        final Map<String, Object> source = toSource(document);
+        source.remove(ID_FIELD);
+        if (indexedFields != null) {
+            source.keySet().retainAll(indexedFields);
+        }
+        if (!hashes.put(id, ContentHashStore.hash(source))) {
+            documentsSkipped++;
+            return null;
+        }
+        return client.prepareIndex(indexName, type, id).setSource(source);
+    }
+
+    private void delete(Object id) {
+        hashes.remove(id.toString());
+        startBulk();
+        bulk.add(client.prepareDelete(indexName, type, id.toString()));
+    }
+
+    private void countOperation() {
+        final long second = System.currentTimeMillis() / 1000;
+        final int slot = (int) (second % THROUGHPUT_WINDOW_SEC);
+        if (windowSeconds[slot] != second) {
+            windowSeconds[slot] = second;
+            windowOperations[slot] = 0;
+        }
+        windowOperations[slot]++;
+    }
+
+    /**
+     * Operations per second over the last {@link #THROUGHPUT_WINDOW_SEC} seconds, so that it follows the current load
+     */
+    private double recentThroughput(long now) {
+        final long second = now / 1000;
+        long operations = 0;
+        for (int i = 0; i < THROUGHPUT_WINDOW_SEC; i++) {
+            if (second - windowSeconds[i] < THROUGHPUT_WINDOW_SEC) {
+                operations += windowOperations[i];
+            }
+        }
+        // the current second is only partly elapsed, and the indexer may be younger than the window
+        final long windowMs = Math.min((THROUGHPUT_WINDOW_SEC - 1) * 1000L + now % 1000, now - startedAt);
+        return operations / (Math.max(1000, windowMs) / 1000.0);
+    }
+
+    private void startBulk() {
+        // the oplog timestamps have only the second resolution, so the bulk deadline uses the local clock
+        if (bulk.numberOfActions() == 0) {
+            bulkStartedMs = System.currentTimeMillis();
+        }
+    }
+
+    private static long timestampMillis(BSONTimestamp ts) {
+        return (ts != null) ? ts.getTime() * 1000L : System.currentTimeMillis();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toSource(DBObject document) {
+        final Map<String, Object> source = new LinkedHashMap<>();
+        for (String key : document.keySet()) {
+            source.put(key, toSourceValue(document.get(key)));
+        }
+        return source;
+    }
+
+    private static Object toSourceValue(Object value) {
+        if (value instanceof ObjectId) {
+            return value.toString();
+        } else if (value instanceof List) {
+            final List<Object> result = new ArrayList<>();
+            for (Object item : (List) value) {
+                result.add(toSourceValue(item));
+            }
+            return result;
+        } else if (value instanceof DBObject) {
+            return toSource((DBObject) value);
+        }
+        return value;
+    }
+}
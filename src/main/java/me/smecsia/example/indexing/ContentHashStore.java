@@ -0,0 +1,184 @@
+package me.smecsia.example.indexing;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact store of the 64-bit content hashes of the indexed documents keyed by the 64-bit hashes of their ids.
+ * Uses the open addressing over the primitive arrays, so it takes ~16 bytes per document without any boxing.
+ * Not thread-safe.
+ *
+ * @author smecsia
+ */
+public class ContentHashStore {
+
+    public static final long NO_HASH = 0L;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final float LOAD_FACTOR = 0.6f;
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    public ContentHashStore() {
+        this(1024);
+    }
+
+    public ContentHashStore(int initialCapacity) {
+        final int capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / LOAD_FACTOR)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * @return the content hash stored for the id, or {@link #NO_HASH} if none
+     */
+    public long get(String id) {
+        final long key = key(id);
+        int slot = slot(key, keys.length);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return NO_HASH;
+    }
+
+    /**
+     * Stores the content hash for the id
+     *
+     * @return true if the content hash has changed
+     */
+    public boolean put(String id, long hash) {
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+        final long key = key(id);
+        int slot = slot(key, keys.length);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                final boolean changed = values[slot] != hash;
+                values[slot] = hash;
+                return changed;
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        keys[slot] = key;
+        values[slot] = hash;
+        size++;
+        return true;
+    }
+
+    public void remove(String id) {
+        final long key = key(id);
+        final int mask = keys.length - 1;
+        int slot = slot(key, keys.length);
+        while (keys[slot] != key) {
+            if (keys[slot] == 0) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // shift the following entries of the probe sequence back into the freed slot
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (keys[next] != 0) {
+            final int home = slot(keys[next], keys.length);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[free] = 0;
+        values[free] = 0;
+        size--;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the document source, independent of its fields order
+     */
+    public static long hash(Map<String, Object> source) {
+        return hash(FNV_OFFSET, source);
+    }
+
+    private static long hash(long hash, Object value) {
+        if (value instanceof Map) {
+            hash = hash(hash, '{');
+            for (Map.Entry<?, ?> entry : new TreeMap<Object, Object>((Map<?, ?>) value).entrySet()) {
+                hash = hash(hash, String.valueOf(entry.getKey()));
+                hash = hash(hash, ':');
+                hash = hash(hash, entry.getValue());
+            }
+            return hash(hash, '}');
+        } else if (value instanceof List) {
+            hash = hash(hash, '[');
+            for (Object item : (List) value) {
+                hash = hash(hash, item);
+                hash = hash(hash, ',');
+            }
+            return hash(hash, ']');
+        } else if (value instanceof Date) {
+            return hash(hash(hash, 'D'), String.valueOf(((Date) value).getTime()));
+        } else if (value instanceof String) {
+            return hash(hash(hash, 'S'), (String) value);
+        } else if (value == null) {
+            return hash(hash, 'N');
+        }
+        return hash(hash(hash, value.getClass().getSimpleName().charAt(0)), value.toString());
+    }
+
+    private static long hash(long hash, String value) {
+        for (byte b : value.getBytes(UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash(hash, (char) 0);
+    }
+
+    private static long hash(long hash, char marker) {
+        return (hash ^ marker) * FNV_PRIME;
+    }
+
+    private static long key(String id) {
+        final long key = hash(hash(FNV_OFFSET, 'K'), id);
+        return (key == 0) ? 1 : key;
+    }
+
+    private static int slot(long key, int capacity) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i], capacity);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package me.smecsia.example.indexing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import me.smecsia.example.model.IndexingStats;
+import me.smecsia.example.service.EmbeddedService;
+import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Tails the oplog once for the whole MongoDB database and dispatches its entries
+ * to the indexers of the registered collections
+ *
+ * @author smecsia
+ */
+public class OplogReader implements EmbeddedService, Runnable {
+
+    public static final String LOCAL_DB = "local";
+    public static final String OPLOG_COLLECTION = "oplog.rs";
+    public static final String COMMAND_COLLECTION = "$cmd";
+    public static final long RETRY_DELAY_MS = 1000;
+    public static final long STOP_TIMEOUT_MS = 5000;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, CollectionIndexer> indexers = new ConcurrentHashMap<>();
+    private final DB localDB;
+    private final String dbName;
+    private volatile BSONTimestamp position;
+    private volatile boolean running = false;
+    private volatile boolean draining = false;
+    private volatile boolean drained = false;
+    private volatile boolean caughtUp = false;
+    private volatile BSONTimestamp drainTarget;
+    private volatile long drainDeadline;
+    private volatile long entriesRead = 0;
+    private volatile long entriesSkipped = 0;
+    private Thread thread;
+
+    public OplogReader(MongoClient mongoClient, String dbName) {
+        this.localDB = mongoClient.getDB(LOCAL_DB);
+        this.dbName = dbName;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!running) {
+            if (position == null) {
+                position = headPosition();
+            }
+            logger.info(format("Starting oplog reader for database '%s' at %s", dbName, position));
+            running = true;
+            thread = new Thread(this, "oplog-reader-" + dbName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        drain(STOP_TIMEOUT_MS);
+    }
+
+    /**
+     * Keeps dispatching the oplog entries up to the oplog head captured when the drain starts, so the writes
+     * made meanwhile do not prolong it, then stops reading and flushes the pending batches of all indexers.
+     * Nothing is waited for past the timeout: if the reader is still busy by then, it is left to stop on its own
+     * and its unflushed batches are lost.
+     *
+     * @return true if the oplog was read up to the captured head and flushed within the timeout
+     */
+    public synchronized boolean drain(long timeoutMs) {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        if (!running) {
+            // once the reader thread is over, nothing competes with flushing its batches here
+            return (thread == null) || (!thread.isAlive() && flushAll(deadline));
+        }
+        try {
+            drainTarget = headPosition();
+        } catch (MongoException e) {
+            logger.warn(format("Failed to read the oplog head, draining database '%s' until the oplog is read out: %s",
+                    dbName, e.getMessage()));
+        }
+        logger.info(format("Draining oplog reader for database '%s' from %s up to %s...", dbName, position, drainTarget));
+        drainDeadline = deadline;
+        draining = true;
+        boolean caughtUp;
+        try {
+            thread.join(Math.max(1, timeoutMs));
+            caughtUp = !thread.isAlive() && drained;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            caughtUp = false;
+        }
+        running = false;
+        logger.info(format("Oplog reader for database '%s' is stopped at %s", dbName, position));
+        return caughtUp;
+    }
+
+    /**
+     * Starts dispatching the oplog entries of the indexer's collection to it
+     */
+    public void register(CollectionIndexer indexer) {
+        indexers.put(indexer.getCollectionName(), indexer);
+    }
+
+    public boolean isRegistered(String collectionName) {
+        return indexers.containsKey(collectionName);
+    }
+
+    public BSONTimestamp getPosition() {
+        return position;
+    }
+
+    /**
+     * The oplog position up to which the entries of all the registered collections are indexed,
+     * or null if some collection has nothing indexed yet
+     */
+    public BSONTimestamp getIndexedPosition() {
+        final BSONTimestamp readerPosition = position;
+        BSONTimestamp result = readerPosition;
+        for (CollectionIndexer indexer : indexers.values()) {
+            final BSONTimestamp indexed = indexer.indexedUpTo(readerPosition);
+            if (indexed == null) {
+                return null;
+            }
+            if (compare(indexed, result) < 0) {
+                result = indexed;
+            }
+        }
+        return result;
+    }
+
+    public long getEntriesRead() {
+        return entriesRead;
+    }
+
+    /**
+     * Number of the entries read for the collections that are not indexed
+     */
+    public long getEntriesSkipped() {
+        return entriesSkipped;
+    }
+
+    public Map<String, IndexingStats> stats() {
+        final BSONTimestamp readerPosition = position;
+        BSONTimestamp unread = null;
+        // the reader is known to have nothing left to read when its cursor came back empty the last time,
+        // otherwise only the cheap unfiltered lookup of the next entry is made
+        if (running && !caughtUp) {
+            try {
+                unread = nextOplogPosition(readerPosition);
+            } catch (MongoException e) {
+                logger.warn(format("Failed to read the oplog after %s: %s", readerPosition, e.getMessage()));
+            }
+        }
+        final Map<String, IndexingStats> stats = new LinkedHashMap<>();
+        for (CollectionIndexer indexer : indexers.values()) {
+            stats.put(indexer.getCollectionName(), indexer.stats(readerPosition, unread));
+        }
+        return stats;
+    }
+
+    public static int compare(BSONTimestamp first, BSONTimestamp second) {
+        if (first.getTime() != second.getTime()) {
+            return (first.getTime() < second.getTime()) ? -1 : 1;
+        }
+        return (first.getInc() < second.getInc()) ? -1 : ((first.getInc() == second.getInc()) ? 0 : 1);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            DBCursor cursor = null;
+            try {
+                cursor = openCursor();
+                while (running) {
+                    if (draining && (reachedDrainTarget() || System.currentTimeMillis() >= drainDeadline)) {
+                        finishDrain(reachedDrainTarget());
+                        break;
+                    }
+                    final DBObject entry = cursor.tryNext();
+                    caughtUp = (entry == null);
+                    if (entry != null) {
+                        dispatch(entry);
+                        flushDue();
+                    } else if (draining) {
+                        // nothing is left to read
+                        finishDrain(true);
+                    } else {
+                        // the oplog is drained for now, so nothing is worth waiting for
+                        flushAll();
+                        if (cursor.getCursorId() == 0) {
+                            // the tailable cursor is dead when nothing matched after the position
+                            pause();
+                            break;
+                        }
+                    }
+                }
+            } catch (MongoException e) {
+                caughtUp = false;
+                logger.warn(format("Oplog cursor for database '%s' failed, reopening: %s", dbName, e.getMessage()));
+                pause();
+            } catch (Exception e) {
+                caughtUp = false;
+                logger.error(format("Failed to process the oplog of database '%s'", dbName), e);
+                pause();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    private void dispatch(DBObject entry) {
+        entriesRead++;
+        final String ns = (String) entry.get("ns");
+        final String collectionName = ns.substring(dbName.length() + 1);
+        if (COMMAND_COLLECTION.equals(collectionName)) {
+            final Object dropped = ((DBObject) entry.get("o")).get("drop");
+            if (dropped != null && indexers.containsKey(dropped.toString())) {
+                indexers.get(dropped.toString()).clear();
+            }
+        } else if (indexers.containsKey(collectionName)) {
+            indexers.get(collectionName).apply(entry);
+        } else {
+            entriesSkipped++;
+        }
+        position = (BSONTimestamp) entry.get("ts");
+    }
+
+    private void flushDue() {
+        for (CollectionIndexer indexer : indexers.values()) {
+            indexer.flushIfDue();
+        }
+    }
+
+    private void flushAll() {
+        for (CollectionIndexer indexer : indexers.values()) {
+            indexer.flush();
+        }
+    }
+
+    /**
+     * @return true if the batches of all indexers are flushed before the deadline
+     */
+    private boolean flushAll(long deadline) {
+        boolean flushed = true;
+        for (CollectionIndexer indexer : indexers.values()) {
+            try {
+                indexer.flush(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (Exception e) {
+                logger.warn(format("Failed to flush the pending batch of collection '%s': %s",
+                        indexer.getCollectionName(), e.getMessage()));
+                flushed = false;
+            }
+        }
+        return flushed;
+    }
+
+    private boolean reachedDrainTarget() {
+        return drainTarget != null && compare(position, drainTarget) >= 0;
+    }
+
+    private void finishDrain(boolean caughtUp) {
+        running = false;
+        drained = flushAll(drainDeadline) && caughtUp;
+    }
+
+    private DBCursor openCursor() {
+        final DBObject query = databaseEntries().append("ts", new BasicDBObject("$gt", position));
+        return localDB.getCollection(OPLOG_COLLECTION).find(query)
+                .sort(new BasicDBObject("$natural", 1))
+                .addOption(Bytes.QUERYOPTION_TAILABLE)
+                .addOption(Bytes.QUERYOPTION_AWAITDATA)
+                .addOption(Bytes.QUERYOPTION_OPLOGREPLAY)
+                .addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+    }
+
+    private BasicDBObject databaseEntries() {
+        return new BasicDBObject("ns", Pattern.compile("^" + Pattern.quote(dbName) + "\\."));
+    }
+
+    /**
+     * @return the position of the last oplog entry of any database
+     */
+    private BSONTimestamp headPosition() {
+        final DBCursor cursor = localDB.getCollection(OPLOG_COLLECTION).find()
+                .sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : new BSONTimestamp(0, 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the position of the first oplog entry after the given one, or null if there is none
+     */
+    private BSONTimestamp nextOplogPosition(BSONTimestamp after) {
+        final DBCursor cursor = localDB.getCollection(OPLOG_COLLECTION)
+                .find(new BasicDBObject("ts", new BasicDBObject("$gt", after)))
+                .sort(new BasicDBObject("$natural", 1)).limit(1)
+                .addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        try {
+            return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
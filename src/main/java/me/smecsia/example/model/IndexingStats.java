@@ -0,0 +1,92 @@
+package me.smecsia.example.model;
+
+import org.bson.types.BSONTimestamp;
+
+/**
+ * Snapshot of the indexing progress of a single collection
+ *
+ * @author smecsia
+ */
+public class IndexingStats {
+
+    final String collectionName;
+    final long documentsIndexed;
+    final long documentsDeleted;
+    final long documentsSkipped;
+    final int pendingOperations;
+    final long lagMillis;
+    final double operationsPerSecond;
+    final BSONTimestamp lastIndexedPosition;
+
+    public IndexingStats(String collectionName, long documentsIndexed, long documentsDeleted,
+                         long documentsSkipped, int pendingOperations, long lagMillis, double operationsPerSecond,
+                         BSONTimestamp lastIndexedPosition) {
+        this.collectionName = collectionName;
+        this.documentsIndexed = documentsIndexed;
+        this.documentsDeleted = documentsDeleted;
+        this.documentsSkipped = documentsSkipped;
+        this.pendingOperations = pendingOperations;
+        this.lagMillis = lagMillis;
+        this.operationsPerSecond = operationsPerSecond;
+        this.lastIndexedPosition = lastIndexedPosition;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    /**
+     * Number of the documents the index has confirmed to be indexed (the failed bulk items are not counted)
+     */
+    public long getDocumentsIndexed() {
+        return documentsIndexed;
+    }
+
+    public long getDocumentsDeleted() {
+        return documentsDeleted;
+    }
+
+    /**
+     * Number of the writes that were not re-indexed because the indexed content has not changed
+     */
+    public long getDocumentsSkipped() {
+        return documentsSkipped;
+    }
+
+    /**
+     * Number of oplog operations read but not yet flushed into the index
+     */
+    public int getPendingOperations() {
+        return pendingOperations;
+    }
+
+    /**
+     * Age of the oldest write that is not yet in the index, whether it is not read from the oplog yet,
+     * buffered during the initial import or waiting in the bulk (0 when caught up).
+     * The oplog timestamps have the second resolution, so the value may exceed the actual lag by up to a second.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * Indexed and deleted documents per second over the last few seconds
+     */
+    public double getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    /**
+     * The oplog position up to which all the writes of the collection are indexed
+     */
+    public BSONTimestamp getLastIndexedPosition() {
+        return lastIndexedPosition;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: indexed=%d, deleted=%d, skipped=%d, pending=%d, lag=%dms, throughput=%.1f ops/s",
+                collectionName, documentsIndexed, documentsDeleted, documentsSkipped, pendingOperations, lagMillis,
+                operationsPerSecond);
+    }
+}
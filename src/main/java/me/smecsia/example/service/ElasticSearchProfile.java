@@ -0,0 +1,149 @@
+package me.smecsia.example.service;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resource profiles of the embedded elasticsearch node.
+ * Every profile keeps the caches and the circuit breakers bounded, so that the node
+ * cannot starve the heap of the application it shares the JVM with.
+ *
+ * @author smecsia
+ */
+public enum ElasticSearchProfile {
+
+    /**
+     * Elasticsearch defaults except for the bounded caches and the single unreplicated shard
+     */
+    DEFAULT("default"),
+
+    /**
+     * Small thread pools, buffers and caches for the memory-constrained hosts
+     */
+    LOW_MEMORY("low-memory") {
+        @Override
+        protected void configure(Map<String, String> settings) {
+            threadPool(settings, "index", 1, 100);
+            threadPool(settings, "bulk", 1, 50);
+            threadPool(settings, "search", 2, 200);
+            settings.put("indices.memory.index_buffer_size", "5%");
+            settings.put("indices.memory.min_index_buffer_size", "8mb");
+            settings.put("indices.fielddata.cache.size", "5%");
+            settings.put("indices.breaker.fielddata.limit", "10%");
+            settings.put("indices.breaker.request.limit", "10%");
+            settings.put("indices.breaker.total.limit", "20%");
+            settings.put("indices.cache.filter.size", "5%");
+        }
+    },
+
+    /**
+     * Larger indexing buffer and bulk pool, refresh less often
+     */
+    INDEXING_HEAVY("indexing-heavy") {
+        @Override
+        protected void configure(Map<String, String> settings) {
+            threadPool(settings, "index", cores(), 500);
+            threadPool(settings, "bulk", cores(), 200);
+            threadPool(settings, "search", Math.max(1, cores() / 2), 500);
+            settings.put("indices.memory.index_buffer_size", "20%");
+            settings.put("index.refresh_interval", "5s");
+            settings.put("index.translog.flush_threshold_ops", "50000");
+            settings.put("indices.fielddata.cache.size", "10%");
+            settings.put("indices.cache.filter.size", "5%");
+        }
+    },
+
+    /**
+     * Larger search pool and caches, smaller indexing buffer
+     */
+    SEARCH_HEAVY("search-heavy") {
+        @Override
+        protected void configure(Map<String, String> settings) {
+            threadPool(settings, "index", Math.max(1, cores() / 2), 200);
+            threadPool(settings, "bulk", Math.max(1, cores() / 2), 50);
+            threadPool(settings, "search", cores() * 3 / 2 + 1, 1000);
+            settings.put("indices.memory.index_buffer_size", "5%");
+            settings.put("indices.fielddata.cache.size", "20%");
+            settings.put("indices.breaker.fielddata.limit", "30%");
+            settings.put("indices.cache.filter.size", "15%");
+        }
+    },
+
+    /**
+     * In-memory store without the persistent gateway, for the tests
+     */
+    EPHEMERAL("ephemeral") {
+        @Override
+        protected void configure(Map<String, String> settings) {
+            LOW_MEMORY.configure(settings);
+            settings.put("index.store.type", "memory");
+            settings.put("gateway.type", "none");
+            settings.put("index.refresh_interval", "100ms");
+        }
+    },
+
+    /**
+     * Memory-mapped file store, survives the restarts but relies on the OS page cache
+     */
+    MMAP("mmap") {
+        @Override
+        protected void configure(Map<String, String> settings) {
+            LOW_MEMORY.configure(settings);
+            settings.put("index.store.type", "mmapfs");
+        }
+    };
+
+    private final String profileName;
+
+    ElasticSearchProfile(String profileName) {
+        this.profileName = profileName;
+    }
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    /**
+     * Finds the profile by its name (e.g. "low-memory") or by the constant name (e.g. "LOW_MEMORY")
+     */
+    public static ElasticSearchProfile byName(String name) {
+        for (ElasticSearchProfile profile : values()) {
+            if (profile.profileName.equalsIgnoreCase(name) || profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown elasticsearch profile: " + name);
+    }
+
+    /**
+     * Settings of the profile with the overrides applied on top of them
+     */
+    public ImmutableSettings.Builder settings(Map<String, String> overrides) {
+        final Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("index.number_of_shards", "1");
+        settings.put("index.number_of_replicas", "0");
+        settings.put("indices.fielddata.cache.size", "10%");
+        settings.put("indices.breaker.fielddata.limit", "20%");
+        settings.put("indices.breaker.request.limit", "20%");
+        settings.put("indices.breaker.total.limit", "40%");
+        settings.put("indices.cache.filter.size", "10%");
+        configure(settings);
+        settings.putAll(overrides);
+        return ImmutableSettings.settingsBuilder().put(settings);
+    }
+
+    protected void configure(Map<String, String> settings) {
+    }
+
+    private static void threadPool(Map<String, String> settings, String pool, int size, int queueSize) {
+        settings.put("threadpool." + pool + ".type", "fixed");
+        settings.put("threadpool." + pool + ".size", String.valueOf(size));
+        settings.put("threadpool." + pool + ".queue_size", String.valueOf(queueSize));
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
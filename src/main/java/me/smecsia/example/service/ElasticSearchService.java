@@ -1,11 +1,16 @@
 package me.smecsia.example.service;
 
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import me.smecsia.example.indexing.CollectionIndexer;
+import me.smecsia.example.indexing.OplogReader;
 import me.smecsia.example.model.IndexingResult;
+import me.smecsia.example.model.IndexingStats;
+import org.bson.types.BSONTimestamp;
 import org.elasticsearch.action.count.CountResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.search.SearchHit;
@@ -14,21 +19,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.mongodb.MongoCredential.createMongoCRCredential;
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static jodd.io.FileUtil.createTempDirectory;
 import static jodd.io.FileUtil.deleteDir;
+import static jodd.io.FileUtil.writeString;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.index.query.QueryBuilders.queryString;
 import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
 
 public class ElasticSearchService implements EmbeddedService, IndexingService {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
+    public static final int BULK_SIZE = 1000;
+    public static final long BULK_TIMEOUT_MS = 30;
+    public static final long DRAIN_TIMEOUT_MS = 10000;
+    public static final String POSITION_FILE = "oplog.position";
     private Node node;
+    private volatile OplogReader oplogReader;
+    private MongoClient mongoClient;
     private final String mongoReplicaSet;
     private final String dataDirectory;
     private final String mongoDBName;
@@ -38,6 +58,15 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
     private final boolean removeDataDir;
     private final boolean enabled;
     private volatile boolean stopped = false;
+    private long drainTimeoutMs = DRAIN_TIMEOUT_MS;
+    private volatile BSONTimestamp finalPosition;
+    private final Map<String, Long> shutdownTimings = new LinkedHashMap<>();
+    private ElasticSearchProfile profile = ElasticSearchProfile.DEFAULT;
+    private final Map<String, String> settingsOverrides = new LinkedHashMap<>();
+    private final SingleFlight<String, List<IndexingResult>> searches = new SingleFlight<>();
+    private final Map<String, List<String>> indexedFields = new ConcurrentHashMap<>();
+    private final Set<CollectionIndexer> imports =
+            Collections.newSetFromMap(new ConcurrentHashMap<CollectionIndexer, Boolean>());
 
     public ElasticSearchService(
             String mongoReplicaSet,
@@ -68,9 +97,13 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
     public void start() {
         if (this.enabled) {
             logger.info("Starting the embedded elasticsearch service...");
-            ImmutableSettings.Builder elasticsearchSettings = ImmutableSettings.settingsBuilder()
-                    .put("http.enabled", "false")
-                    .put("path.data", dataDirectory);
+            logger.info(format("Using the '%s' resource profile with overrides %s",
+                    profile.getProfileName(), settingsOverrides));
+            final Map<String, String> overrides = new LinkedHashMap<>();
+            overrides.put("http.enabled", "false");
+            overrides.put("path.data", dataDirectory);
+            overrides.putAll(settingsOverrides);
+            ImmutableSettings.Builder elasticsearchSettings = profile.settings(overrides);
 
             this.node = nodeBuilder().local(true).settings(elasticsearchSettings.build()).node();
         } else {
@@ -78,15 +111,115 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
         }
     }
 
+    public ElasticSearchProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Sets the resource profile of the node, must be called before {@link #start()}
+     */
+    public void setProfile(ElasticSearchProfile profile) {
+        this.profile = profile;
+    }
+
+    public Map<String, String> getSettingsOverrides() {
+        return settingsOverrides;
+    }
+
+    /**
+     * Overrides the single node setting on top of the profile, must be called before {@link #start()}
+     */
+    public void setSetting(String key, String value) {
+        settingsOverrides.put(key, value);
+    }
+
+    /**
+     * Restricts the indexed fields of the collection, must be called before {@link #addToIndex(String)}.
+     * The writes that do not change the indexed fields are not re-indexed.
+     */
+    public void setIndexedFields(String collectionName, String... fields) {
+        indexedFields.put(collectionName, asList(fields));
+    }
+
+    public long getDrainTimeoutMs() {
+        return drainTimeoutMs;
+    }
+
+    /**
+     * Sets the deadline for draining the pending indexing batches on {@link #stop()}
+     */
+    public void setDrainTimeoutMs(long drainTimeoutMs) {
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    /**
+     * Durations of the shutdown phases of the last {@link #stop()} in milliseconds
+     */
+    public Map<String, Long> getShutdownTimings() {
+        return Collections.unmodifiableMap(shutdownTimings);
+    }
+
+    /**
+     * The oplog position up to which the writes of all the indexed collections were indexed when the service
+     * was stopped (null if some collection had nothing indexed). It is informational only: the indexing always
+     * starts at the oplog tail with the full import of the collections and never resumes from it.
+     */
+    public BSONTimestamp getFinalPosition() {
+        return finalPosition;
+    }
+
+    /**
+     * Stops accepting new searches and collections, waits for the running imports and drains the pending
+     * indexing batches within the drain timeout, flushes the indices, records the final indexed position
+     * and only then stops the node. The imports still running by the deadline are aborted.
+     */
     @Override
-    public void stop() {
+    public synchronized void stop() {
         if (!stopped) {
             logger.info("Shutting down the embedded elasticsearch service...");
             stopped = true;
+            final long startedAt = System.currentTimeMillis();
+            final long deadline = startedAt + drainTimeoutMs;
+            long phaseStartedAt = startedAt;
+            boolean drained = false;
+            if (oplogReader != null) {
+                try {
+                    drained = awaitImports(deadline);
+                    phaseStartedAt = timing("imports", phaseStartedAt);
+                    drained = oplogReader.drain(Math.max(1, deadline - System.currentTimeMillis())) && drained;
+                    if (!drained) {
+                        logger.warn(format("Indexing was not drained within %d ms, some writes may be not indexed",
+                                drainTimeoutMs));
+                    }
+                } catch (Exception e) {
+                    logger.error("Failed to drain the pending indexing batches", e);
+                }
+                // the reader is kept so that the final indexing stats remain available
+                finalPosition = oplogReader.getIndexedPosition();
+                phaseStartedAt = timing("drain", phaseStartedAt);
+            }
+            if (mongoClient != null) {
+                mongoClient.close();
+                mongoClient = null;
+            }
+            if (node != null) {
+                try {
+                    getClient().admin().indices().prepareFlush().execute().actionGet(drainTimeoutMs);
+                } catch (Exception e) {
+                    logger.error("Failed to flush the indices", e);
+                    drained = false;
+                }
+                phaseStartedAt = timing("flush", phaseStartedAt);
+            }
+            if (oplogReader != null) {
+                recordFinalPosition(drained);
+                phaseStartedAt = timing("record_position", phaseStartedAt);
+            }
             if (node != null) {
                 node.stop();
                 node.close();
                 node = null;
+                phaseStartedAt = timing("node_stop", phaseStartedAt);
             }
             if (removeDataDir) {
                 try {
@@ -94,7 +227,10 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
                 } catch (Exception e) {
                     logger.error("Failed to remove data dir", e);
                 }
+                timing("remove_data_dir", phaseStartedAt);
             }
+            logger.info(format("The embedded elasticsearch service is stopped in %d ms: %s",
+                    System.currentTimeMillis() - startedAt, shutdownTimings));
         }
     }
 
@@ -104,18 +240,34 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
     }
 
     @Override
-    public List<IndexingResult> search(String collectionName, String value) {
-        final List<IndexingResult> results = new ArrayList<>();
-        if (enabled) {
-            logger.debug(format("Searching for '%s' in collection '%s' ...", value, collectionName));
-            final SearchResponse resp = search(collectionName, queryString(value));
-            for (SearchHit hit : resp.getHits()) {
-                results.add(new IndexingResult(hit.getId(), hit.score(), hit.getSource()));
-            }
-            logger.debug(format("Search for '%s' in collection '%s' gave %d results...",
-                    value, collectionName, results.size()));
+    public List<IndexingResult> search(final String collectionName, final String value) {
+        if (!enabled) {
+            return new ArrayList<>();
         }
-        return results;
+        checkNotStopped();
+        // concurrent identical searches share the single execution, each caller gets its own copy
+        final List<IndexingResult> shared = searches.execute(collectionName + "\u0000" + value,
+                new Callable<List<IndexingResult>>() {
+                    @Override
+                    public List<IndexingResult> call() {
+                        return doSearch(collectionName, value);
+                    }
+                });
+        return new ArrayList<>(shared);
+    }
+
+    /**
+     * Number of the searches that were actually executed against the index
+     */
+    public long getSearchesExecuted() {
+        return searches.getExecutions();
+    }
+
+    /**
+     * Number of the searches that received the result of a concurrent identical search
+     */
+    public long getSearchesCoalesced() {
+        return searches.getCoalesced();
     }
 
     @Override
@@ -133,10 +285,30 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
         }
     }
 
+    /**
+     * Indexing progress of every collection added to the index
+     */
+    public Map<String, IndexingStats> getIndexingStats() {
+        final OplogReader reader = oplogReader;
+        return (reader != null) ? reader.stats() : Collections.<String, IndexingStats>emptyMap();
+    }
+
     public Client getClient() {
         return node.client();
     }
 
+    private List<IndexingResult> doSearch(String collectionName, String value) {
+        final List<IndexingResult> results = new ArrayList<>();
+        logger.debug(format("Searching for '%s' in collection '%s' ...", value, collectionName));
+        final SearchResponse resp = search(collectionName, queryString(value));
+        for (SearchHit hit : resp.getHits()) {
+            results.add(new IndexingResult(hit.getId(), hit.score(), hit.getSource()));
+        }
+        logger.debug(format("Search for '%s' in collection '%s' gave %d results...",
+                value, collectionName, results.size()));
+        return results;
+    }
+
     private SearchResponse search(String collectionName, QueryBuilder query) {
         final CountResponse count = count(collectionName, query);
         return getClient().prepareSearch().setTypes(collectionName)
@@ -160,56 +332,93 @@ public class ElasticSearchService implements EmbeddedService, IndexingService {
 
     private void indexCollection(String collectionName) throws IOException {
         if (enabled) {
-            final XContentBuilder config = jsonBuilder()
-                    .startObject()
-                        .field("type", "mongodb")
-                        .startObject("mongodb");
-                            config
-                            .startArray("servers");
-                                for (String replSetEl : mongoReplicaSet.split(",")) {
-                                    final String[] hostPort = replSetEl.split(":");
-                                    config
-                                            .startObject()
-                                                .field("host", hostPort[0])
-                                                .field("port", Integer.parseInt(hostPort[1]))
-                                            .endObject();
-                                }
-                                config
-                            .endArray();
-                                config
-                            .startArray("credentials")
-                                .startObject()
-                                    .field("db", "local")
-                                    .field("auth", mongoDBName)
-                                    .field("user", username)
-                                    .field("password", password)
-                                .endObject()
-                                .startObject()
-                                    .field("db", mongoDBName)
-                                    .field("auth", mongoDBName)
-                                    .field("user", username)
-                                    .field("password", password)
-                                .endObject()
-                            .endArray();
-                                config
-                            .field("db", mongoDBName)
-                            .field("collection", collectionName)
-                            .field("gridfs", false)
-                            .startObject("options")
-                                    .field("secondary_read_preference", "false")
-                                    .field("drop_collection", "true")
-                                    .field("is_mongos", "false")
-                            .endObject()
-                        .endObject()
-                        .startObject("index")
-                            .field("name", mongoDBName)
-                            .field("type", collectionName)
-                            .field("bulk_size", "1000")
-                            .field("bulk_timeout", "30")
-                        .endObject()
-                    .endObject();
-            getClient().prepareIndex("_river", collectionName, "_meta").setSource(config)
-                    .execute().actionGet(initTimeout);
+            final CollectionIndexer indexer;
+            synchronized (this) {
+                checkNotStopped();
+                if (oplogReader == null) {
+                    mongoClient = mongoClient();
+                    oplogReader = new OplogReader(mongoClient, mongoDBName);
+                    oplogReader.start();
+                }
+                if (oplogReader.isRegistered(collectionName)) {
+                    return;
+                }
+                indexer = new CollectionIndexer(getClient(),
+                        mongoClient.getDB(mongoDBName).getCollection(collectionName),
+                        mongoDBName, BULK_SIZE, BULK_TIMEOUT_MS, initTimeout);
+                indexer.setIndexedFields(indexedFields.get(collectionName));
+                // registering before the import so that the writes made during the import are not lost
+                oplogReader.register(indexer);
+                imports.add(indexer);
+            }
+            // the import does not hold the service lock, so it neither blocks the other collections nor stop()
+            try {
+                indexer.importAll();
+            } finally {
+                imports.remove(indexer);
+            }
+        }
+    }
+
+    /**
+     * Waits for the running imports until the deadline and aborts the ones that are still running then
+     *
+     * @return true if all the imports have completed
+     */
+    private boolean awaitImports(long deadline) {
+        boolean completed = true;
+        for (CollectionIndexer indexer : imports) {
+            if (!indexer.awaitImport(deadline - System.currentTimeMillis())) {
+                logger.warn(format("Import of collection '%s' is not complete by the deadline, aborting it",
+                        indexer.getCollectionName()));
+                indexer.abortImport();
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    private void checkNotStopped() {
+        if (stopped) {
+            throw new IllegalStateException("The embedded elasticsearch service is stopped");
+        }
+    }
+
+    private long timing(String phase, long phaseStartedAt) {
+        final long now = System.currentTimeMillis();
+        shutdownTimings.put(phase, now - phaseStartedAt);
+        return now;
+    }
+
+    /**
+     * Logs the final indexed position and, when the data directory is kept, writes it into {@link #POSITION_FILE}
+     * for the operators. The file is informational only, it is never read back on start.
+     */
+    private void recordFinalPosition(boolean drained) {
+        if (drained) {
+            logger.info(format("Everything is indexed up to the oplog position %s", finalPosition));
+        } else {
+            logger.warn(format("Indexing was interrupted, the writes are indexed only up to the oplog position %s",
+                    finalPosition));
+        }
+        if (!removeDataDir && finalPosition != null) {
+            try {
+                writeString(new File(dataDirectory, POSITION_FILE),
+                        format("%d:%d", finalPosition.getTime(), finalPosition.getInc()));
+            } catch (IOException e) {
+                logger.error("Failed to record the final oplog position", e);
+            }
+        }
+    }
+
+    private MongoClient mongoClient() throws UnknownHostException {
+        final List<ServerAddress> addresses = new ArrayList<>();
+        for (String replSetEl : mongoReplicaSet.split(",")) {
+            final String[] hostPort = replSetEl.split(":");
+            addresses.add(new ServerAddress(hostPort[0], Integer.parseInt(hostPort[1])));
         }
+        return (!isEmpty(username) && !isEmpty(password)) ?
+                new MongoClient(addresses, asList(createMongoCRCredential(username, mongoDBName, password.toCharArray()))) :
+                new MongoClient(addresses);
     }
 }
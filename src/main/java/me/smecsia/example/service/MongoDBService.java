@@ -19,6 +19,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static de.flapdoodle.embed.process.io.Processors.console;
 import static de.flapdoodle.embed.process.io.Processors.namedConsole;
@@ -61,6 +63,7 @@ public class MongoDBService implements EmbeddedService {
     private String[] roles = {"\"readWrite\""};
     private String adminUsername = "admin";
     private String adminPassword = "admin";
+    private final List<EmbeddedService> dependentServices = new CopyOnWriteArrayList<>();
 
     public MongoDBService(String replicaSet,
                           String mongoDatabaseName,
@@ -185,9 +188,24 @@ public class MongoDBService implements EmbeddedService {
         this.adminPassword = adminPassword;
     }
 
+    /**
+     * Registers the service reading from this MongoDB, so it is stopped before mongod
+     * (including the stop from the shutdown hook)
+     */
+    public void addDependentService(EmbeddedService service) {
+        dependentServices.add(service);
+    }
+
     @Override
-    public void stop() {
+    public synchronized void stop() {
         if (!stopped) {
+            for (EmbeddedService service : dependentServices) {
+                try {
+                    service.stop();
+                } catch (Exception e) {
+                    logger.error("Failed to stop the dependent service", e);
+                }
+            }
             logger.info("Shutting down the embedded mongodb service...");
             stopped = true;
             if (executable != null) {
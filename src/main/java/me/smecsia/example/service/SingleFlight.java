@@ -0,0 +1,72 @@
+package me.smecsia.example.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the single in-flight execution between the concurrent calls with the same key:
+ * the first caller executes the call, the others wait for and receive its result.
+ * Nothing is cached after the execution completes.
+ *
+ * @author smecsia
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public V execute(K key, Callable<V> call) {
+        final FutureTask<V> task = new FutureTask<>(call);
+        final FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+        executions.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return await(task);
+    }
+
+    /**
+     * Number of the calls that were actually executed
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Number of the calls that received the result of another in-flight execution
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private V await(FutureTask<V> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the in-flight call", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException("In-flight call failed", e.getCause());
+        }
+    }
+}
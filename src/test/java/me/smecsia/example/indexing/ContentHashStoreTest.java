@@ -0,0 +1,68 @@
+package me.smecsia.example.indexing;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static me.smecsia.example.indexing.ContentHashStore.NO_HASH;
+import static me.smecsia.example.indexing.ContentHashStore.hash;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author smecsia
+ */
+public class ContentHashStoreTest {
+
+    @Test
+    public void testHashDoesNotDependOnFieldsOrder() {
+        final Map<String, Object> first = new LinkedHashMap<>();
+        first.put("title", "Some title");
+        first.put("body", "Some body");
+        final Map<String, Object> second = new LinkedHashMap<>();
+        second.put("body", "Some body");
+        second.put("title", "Some title");
+        assertThat(hash(first), is(hash(second)));
+
+        second.put("body", "Some another body");
+        assertThat(hash(first), not(hash(second)));
+    }
+
+    @Test
+    public void testPutReportsChangedContent() {
+        final ContentHashStore store = new ContentHashStore();
+        assertThat(store.put("id", 1L), is(true));
+        assertThat(store.put("id", 1L), is(false));
+        assertThat(store.put("id", 2L), is(true));
+        store.remove("id");
+        assertThat(store.get("id"), is(NO_HASH));
+        assertThat(store.put("id", 2L), is(true));
+    }
+
+    @Test
+    public void testStoreMatchesHashMapUnderRandomOperations() {
+        final ContentHashStore store = new ContentHashStore(4);
+        final Map<String, Long> expected = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final String id = "id" + random.nextInt(3000);
+            if (random.nextInt(3) == 0) {
+                store.remove(id);
+                expected.remove(id);
+            } else {
+                final long value = random.nextLong() | 1;
+                store.put(id, value);
+                expected.put(id, value);
+            }
+        }
+        assertThat(store.size(), is(expected.size()));
+        for (int i = 0; i < 3000; i++) {
+            final String id = "id" + i;
+            assertThat(store.get(id), is(expected.containsKey(id) ? expected.get(id) : NO_HASH));
+        }
+    }
+}
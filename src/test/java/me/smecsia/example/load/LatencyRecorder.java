@@ -0,0 +1,62 @@
+package me.smecsia.example.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the latencies of the operations between the report intervals
+ *
+ * @author smecsia
+ */
+public class LatencyRecorder {
+
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public void record(long startedNanos) {
+        latencies.add(System.nanoTime() - startedNanos);
+        total.incrementAndGet();
+    }
+
+    public void error() {
+        errors.incrementAndGet();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Removes the latencies recorded since the previous call
+     *
+     * @return sorted latencies in nanoseconds
+     */
+    public List<Long> drain() {
+        final List<Long> result = new ArrayList<>();
+        Long latency;
+        while ((latency = latencies.poll()) != null) {
+            result.add(latency);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the percentile of the sorted latencies in milliseconds
+     */
+    public static double percentileMs(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))) / 1000000.0;
+    }
+}
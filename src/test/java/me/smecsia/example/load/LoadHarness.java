@@ -0,0 +1,311 @@
+package me.smecsia.example.load;
+
+import me.smecsia.example.db.PostDAO;
+import me.smecsia.example.model.IndexingStats;
+import me.smecsia.example.model.Post;
+import me.smecsia.example.service.ElasticSearchProfile;
+import me.smecsia.example.service.ElasticSearchService;
+import me.smecsia.example.service.MongoDBService;
+import me.smecsia.example.service.MorphiaDBService;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.mongodb.ReadPreference.nearest;
+import static com.mongodb.WriteConcern.ACKNOWLEDGED;
+import static java.lang.String.format;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.smecsia.example.load.LatencyRecorder.percentileMs;
+import static org.apache.commons.lang3.StringUtils.join;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Runs the concurrent writers and searchers against the embedded services for the set duration
+ * and reports the throughput, the search latency and the indexing lag over time as CSV and JSON.
+ * The lag is measured end to end by a probe that writes a marker post and times until the search finds it.
+ * <p/>
+ * Run with {@code mvn -Pload test-compile exec:java -Dload.writers=4 -Dload.searchers=16 -Dload.duration=60}
+ *
+ * @author smecsia
+ */
+public class LoadHarness {
+    public static final String RS_NAME = "local";
+    public static final String DB = "mongolastic";
+    public static final String USER = "user";
+    public static final String PASS = "pass";
+    public static final String[] WORDS = {
+            "keyword", "mongo", "elastic", "oplog", "index", "search", "shard", "replica", "bulk", "query",
+            "cursor", "document", "field", "cache", "buffer", "thread", "latency", "throughput", "node", "river"
+    };
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final String replicaSet = System.getProperty("load.rs", "localhost:37017");
+    private final int writers = Integer.getInteger("load.writers", 4);
+    private final int searchers = Integer.getInteger("load.searchers", 16);
+    private final int durationSec = Integer.getInteger("load.duration", 60);
+    private final int corpusSize = Integer.getInteger("load.corpus", 1000);
+    private final int reportIntervalMs = Integer.getInteger("load.interval", 1000);
+    private final int unchangedPercent = Integer.getInteger("load.unchanged", 20);
+    private final int probeIntervalMs = Integer.getInteger("load.probeInterval", 500);
+    private final int probeTimeoutMs = Integer.getInteger("load.probeTimeout", 30000);
+    private final String profile = System.getProperty("load.profile", "default");
+    private final File outputDir = new File(System.getProperty("load.output", "target/load"));
+    private final LatencyRecorder writes = new LatencyRecorder();
+    private final LatencyRecorder searches = new LatencyRecorder();
+    private final LatencyRecorder visibility = new LatencyRecorder();
+    private final List<Post> corpus = Collections.synchronizedList(new ArrayList<Post>());
+    private final List<Map<String, Object>> samples = new ArrayList<>();
+    private volatile boolean running = true;
+    private long startedAt;
+    private long lastSampleAt;
+    private ElasticSearchService es;
+    private PostDAO postDAO;
+
+    public static void main(String[] args) throws Exception {
+        new LoadHarness().run();
+    }
+
+    public void run() throws Exception {
+        final MongoDBService mongo = new MongoDBService(replicaSet, DB, USER, PASS, RS_NAME, null, true);
+        mongo.setRoles("\"readWrite\"", "{\"db\":\"local\",\"role\":\"read\"}");
+        mongo.start();
+        es = new ElasticSearchService(replicaSet, DB, USER, PASS, null, true, 25000);
+        es.setProfile(ElasticSearchProfile.byName(profile));
+        es.start();
+        mongo.addDependentService(es);
+        try {
+            final MorphiaDBService dbService = new MorphiaDBService(replicaSet, DB, USER, PASS);
+            dbService.getDatastore().getDB().getMongo().setReadPreference(nearest());
+            dbService.getDatastore().setDefaultWriteConcern(ACKNOWLEDGED);
+            postDAO = new PostDAO(dbService);
+
+            logger.info(format("Generating the corpus of %d posts...", corpusSize));
+            final Random random = new Random(42);
+            for (int i = 0; i < corpusSize; i++) {
+                final Post post = randomPost(random);
+                postDAO.save(post);
+                corpus.add(post);
+            }
+            es.addToIndex(Post.class);
+            runLoad();
+        } finally {
+            es.stop();
+            mongo.stop();
+        }
+        logger.info(format("Shutdown timings: %s", es.getShutdownTimings()));
+        writeReport();
+    }
+
+    private void runLoad() throws InterruptedException {
+        logger.info(format("Running %d writers and %d searchers for %d seconds...", writers, searchers, durationSec));
+        final ExecutorService workers = newFixedThreadPool(writers + searchers + 1);
+        final ScheduledExecutorService reporter = newSingleThreadScheduledExecutor();
+        startedAt = lastSampleAt = System.currentTimeMillis();
+        for (int i = 0; i < writers; i++) {
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (running) {
+                        write();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < searchers; i++) {
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (running) {
+                        search();
+                    }
+                }
+            });
+        }
+        workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    probe();
+                }
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, reportIntervalMs, reportIntervalMs, MILLISECONDS);
+
+        SECONDS.sleep(durationSec);
+        running = false;
+        workers.shutdown();
+        workers.awaitTermination(30, SECONDS);
+        reporter.shutdown();
+        reporter.awaitTermination(30, SECONDS);
+        sample();
+    }
+
+    private void write() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int index = random.nextInt(corpus.size());
+        final long started = System.nanoTime();
+        try {
+            if (random.nextInt(100) < unchangedPercent) {
+                postDAO.save(corpus.get(index));
+            } else {
+                final Post post = randomPost(random);
+                post.setId(corpus.get(index).getId());
+                postDAO.save(post);
+                corpus.set(index, post);
+            }
+            writes.record(started);
+        } catch (Exception e) {
+            writes.error();
+            logger.warn("Write failed: " + e.getMessage());
+        }
+    }
+
+    private void search() {
+        final long started = System.nanoTime();
+        try {
+            es.search(Post.class, "body:" + WORDS[ThreadLocalRandom.current().nextInt(WORDS.length)]);
+            searches.record(started);
+        } catch (Exception e) {
+            searches.error();
+            logger.warn("Search failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the marker post and waits until it can be found, recording how long the write took to become searchable
+     */
+    private void probe() {
+        final String marker = "probe" + UUID.randomUUID().toString().replace("-", "");
+        final Post post = new Post();
+        post.setTitle(marker);
+        post.setBody(marker);
+        final long started = System.nanoTime();
+        try {
+            postDAO.save(post);
+            final long deadline = System.currentTimeMillis() + probeTimeoutMs;
+            while (running && es.search(Post.class, "body:" + marker).isEmpty()) {
+                if (System.currentTimeMillis() > deadline) {
+                    visibility.error();
+                    logger.warn(format("Marker post is not searchable within %d ms", probeTimeoutMs));
+                    return;
+                }
+                MILLISECONDS.sleep(10);
+            }
+            if (running) {
+                visibility.record(started);
+            }
+            MILLISECONDS.sleep(probeIntervalMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        } catch (Exception e) {
+            visibility.error();
+            logger.warn("Probe failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized void sample() {
+        final long now = System.currentTimeMillis();
+        final double intervalSec = Math.max(1, now - lastSampleAt) / 1000.0;
+        lastSampleAt = now;
+        final List<Long> writeLatencies = writes.drain();
+        final List<Long> searchLatencies = searches.drain();
+        final List<Long> visibilityLatencies = visibility.drain();
+        final IndexingStats stats = es.getIndexingStats().get("post");
+
+        final Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("elapsed_sec", (now - startedAt) / 1000.0);
+        sample.put("writes_per_sec", writeLatencies.size() / intervalSec);
+        sample.put("write_p50_ms", percentileMs(writeLatencies, 50));
+        sample.put("write_p99_ms", percentileMs(writeLatencies, 99));
+        sample.put("searches_per_sec", searchLatencies.size() / intervalSec);
+        sample.put("search_p50_ms", percentileMs(searchLatencies, 50));
+        sample.put("search_p99_ms", percentileMs(searchLatencies, 99));
+        sample.put("searchable_p50_ms", percentileMs(visibilityLatencies, 50));
+        sample.put("searchable_max_ms", percentileMs(visibilityLatencies, 100));
+        sample.put("probe_timeouts", visibility.getErrors());
+        sample.put("indexing_lag_ms", (stats != null) ? stats.getLagMillis() : 0);
+        sample.put("pending_operations", (stats != null) ? stats.getPendingOperations() : 0);
+        sample.put("documents_indexed", (stats != null) ? stats.getDocumentsIndexed() : 0);
+        sample.put("documents_skipped", (stats != null) ? stats.getDocumentsSkipped() : 0);
+        sample.put("searches_coalesced", es.getSearchesCoalesced());
+        sample.put("errors", writes.getErrors() + searches.getErrors());
+        samples.add(sample);
+        logger.info(format("Load sample: %s", sample));
+    }
+
+    private synchronized void writeReport() throws IOException {
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("Failed to create the output directory " + outputDir);
+        }
+        final File csv = new File(outputDir, "report.csv");
+        try (Writer writer = new FileWriter(csv)) {
+            if (!samples.isEmpty()) {
+                writer.write(join(samples.get(0).keySet(), ",") + "\n");
+            }
+            for (Map<String, Object> sample : samples) {
+                writer.write(join(sample.values(), ",") + "\n");
+            }
+        }
+
+        final XContentBuilder json = jsonBuilder().prettyPrint().startObject()
+                .startObject("config")
+                    .field("writers", writers)
+                    .field("searchers", searchers)
+                    .field("duration_sec", durationSec)
+                    .field("corpus", corpusSize)
+                    .field("unchanged_percent", unchangedPercent)
+                    .field("profile", profile)
+                .endObject()
+                .field("total_writes", writes.getTotal())
+                .field("total_searches", searches.getTotal())
+                .field("shutdown_ms", es.getShutdownTimings())
+                .startArray("samples");
+        for (Map<String, Object> sample : samples) {
+            json.map(sample);
+        }
+        json.endArray().endObject();
+        final File jsonFile = new File(outputDir, "report.json");
+        try (Writer writer = new FileWriter(jsonFile)) {
+            writer.write(json.string());
+        }
+        logger.info(format("Load report is written to %s and %s", csv, jsonFile));
+    }
+
+    private static Post randomPost(Random random) {
+        final Post post = new Post();
+        post.setTitle(randomText(random, 3));
+        post.setBody(randomText(random, 20));
+        return post;
+    }
+
+    private static String randomText(Random random, int words) {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package me.smecsia.example.service;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author smecsia
+ */
+public class ElasticSearchProfileTest {
+    public static final String RS = "localhost:37017";
+    public static final String DB = "mongolastic";
+    public static final String INDEX = "profile-test";
+    ElasticSearchService es;
+
+    @After
+    public void shutdownEmbeddedServer() {
+        if (es != null) {
+            es.stop();
+        }
+    }
+
+    @Test
+    public void testOverrideWinsOverProfile() throws IOException {
+        es = serviceWith(ElasticSearchProfile.LOW_MEMORY);
+        es.setSetting("indices.fielddata.cache.size", "3%");
+        es.start();
+
+        final Settings settings = nodeSettings();
+        assertThat(settings.get("indices.fielddata.cache.size"), is("3%"));
+        assertThat(settings.get("threadpool.index.size"), is("1"));
+        assertThat(settings.get("indices.breaker.total.limit"), is("20%"));
+    }
+
+    @Test
+    public void testDefaultProfileBoundsCachesAndUsesSingleShard() throws IOException {
+        es = serviceWith(ElasticSearchProfile.DEFAULT);
+        es.start();
+
+        final Settings settings = nodeSettings();
+        assertThat(settings.get("indices.fielddata.cache.size"), is("10%"));
+        assertThat(settings.get("indices.cache.filter.size"), is("10%"));
+
+        es.getClient().admin().indices().prepareCreate(INDEX).execute().actionGet();
+        final String shards = es.getClient().admin().indices().prepareGetSettings(INDEX).execute().actionGet()
+                .getSetting(INDEX, "index.number_of_shards");
+        assertThat(shards, is("1"));
+    }
+
+    private ElasticSearchService serviceWith(ElasticSearchProfile profile) throws IOException {
+        final ElasticSearchService service = new ElasticSearchService(RS, DB, null, null, null, true, 25000);
+        service.setProfile(profile);
+        return service;
+    }
+
+    private Settings nodeSettings() {
+        return es.getClient().admin().cluster().prepareNodesInfo().setSettings(true).execute().actionGet()
+                .getNodes()[0].getSettings();
+    }
+}
@@ -1,21 +1,39 @@
 package me.smecsia.example.service;
 
+import com.mongodb.BasicDBObject;
 import me.smecsia.example.db.PostDAO;
+import me.smecsia.example.indexing.OplogReader;
 import me.smecsia.example.model.IndexingResult;
 import me.smecsia.example.model.Post;
+import org.bson.types.BSONTimestamp;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.mongodb.ReadPreference.nearest;
 import static com.mongodb.WriteConcern.ACKNOWLEDGED;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.smecsia.example.indexing.OplogReader.LOCAL_DB;
+import static me.smecsia.example.indexing.OplogReader.OPLOG_COLLECTION;
 import static me.smecsia.example.service.IndexingServiceMatcher.findIndexedAtLeast;
+import static me.smecsia.example.service.IndexingStatsMatcher.indexedAtLeast;
+import static me.smecsia.example.service.IndexingStatsMatcher.skippedAtLeast;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.hasSize;
 import static ru.yandex.qatools.matchers.decorators.MatcherDecoratorsBuilder.should;
 import static ru.yandex.qatools.matchers.decorators.TimeoutWaiter.timeoutHasExpired;
@@ -29,6 +47,7 @@ public class ElasticSearchServiceTest {
     public static final String DB = "mongolastic";
     public static final String USER = "user";
     public static final String PASS = "pass";
+    public static final int SEARCHERS = 16;
     ElasticSearchService es;
     MongoDBService mongo;
     PostDAO postDAO;
@@ -39,7 +58,9 @@ public class ElasticSearchServiceTest {
         mongo.setRoles("\"readWrite\"","{\"db\":\"local\",\"role\":\"read\"}");
         mongo.start();
         es = new ElasticSearchService(RS, DB, USER, PASS, null, true, 25000);
+        es.setProfile(ElasticSearchProfile.EPHEMERAL);
         es.start();
+        mongo.addDependentService(es);
 
         final MorphiaDBService dbService = new MorphiaDBService(RS, DB, USER, PASS);
         dbService.getDatastore().getDB().getMongo().setReadPreference(nearest());
@@ -49,8 +70,8 @@ public class ElasticSearchServiceTest {
 
     @After
     public void shutdownEmbeddedServers() throws IOException {
-        mongo.stop();
         es.stop();
+        mongo.stop();
     }
 
     @Test
@@ -60,7 +81,7 @@ public class ElasticSearchServiceTest {
         Post post2 = createPost("Some another title", "Some post without the required word");
         Post post3 = createPost("Some third title", "Some post with the required keyword among other words");
 
-        es.addToIndex(Post.class); // create the new index within elastic using the mongodb river
+        es.addToIndex(Post.class); // import the collection and start following its oplog
 
         assertThat("At least two posts must be found by query",
                 es, should(findIndexedAtLeast(Post.class, "body:keyword", 2))
@@ -71,8 +92,95 @@ public class ElasticSearchServiceTest {
         assertThat(response, hasSize(2));
         assertThat(response.get(0).getId(), is(post1.getId().toString()));
         assertThat(response.get(1).getId(), is(post3.getId().toString()));
+        assertThat(es.getIndexingStats().get("post").getDocumentsIndexed(), greaterThanOrEqualTo(3L));
+    }
+
+    @Test
+    public void testStopDrainsPendingIndexing() throws IOException, InterruptedException {
+        es.addToIndex(Post.class);
+        final long indexedBefore = es.getIndexingStats().get("post").getDocumentsIndexed();
+        final Post post = createPost("Some title", "Some post written right before the shutdown");
+        final BSONTimestamp written = (BSONTimestamp) postDAO.getDatastore().getDB().getSisterDB(LOCAL_DB)
+                .getCollection(OPLOG_COLLECTION).findOne(new BasicDBObject("o._id", post.getId())).get("ts");
+
+        es.stop();
+        assertThat(es.getFinalPosition(), notNullValue());
+        assertThat(OplogReader.compare(es.getFinalPosition(), written), greaterThanOrEqualTo(0));
+        assertThat(es.getIndexingStats().get("post").getDocumentsIndexed(), greaterThan(indexedBefore));
+        assertThat(es.getShutdownTimings(), hasKey("drain"));
+        assertThat(es.getShutdownTimings(), hasKey("node_stop"));
+    }
+
+    @Test
+    public void testUnchangedSaveIsNotReindexed() throws IOException {
+        es.addToIndex(Post.class);
+        final Post post = createPost("Some title", "Some post saved twice");
+        assertThat(es, should(indexedAtLeast("post", 1)).whileWaitingUntil(timeoutHasExpired(20000)));
+
+        postDAO.save(post);
+        assertThat(es, should(skippedAtLeast("post", 1)).whileWaitingUntil(timeoutHasExpired(20000)));
+        assertThat(es.getIndexingStats().get("post").getDocumentsIndexed(), is(1L));
     }
 
+    @Test
+    public void testChangeOfUnindexedFieldIsNotReindexed() throws IOException {
+        es.setIndexedFields("post", "body");
+        es.addToIndex(Post.class);
+        final Post post = createPost("Some title", "Some post with the indexed body");
+        assertThat(es, should(indexedAtLeast("post", 1)).whileWaitingUntil(timeoutHasExpired(20000)));
+
+        post.setTitle("Some another title");
+        postDAO.save(post);
+        assertThat(es, should(skippedAtLeast("post", 1)).whileWaitingUntil(timeoutHasExpired(20000)));
+        assertThat(es.getIndexingStats().get("post").getDocumentsIndexed(), is(1L));
+
+        post.setBody("Some post with the changed body");
+        postDAO.save(post);
+        assertThat(es, should(indexedAtLeast("post", 2)).whileWaitingUntil(timeoutHasExpired(20000)));
+    }
+
+    @Test
+    public void testConcurrentIdenticalSearchesAreCoalesced() throws Exception {
+        createPost("Some title", "Some post with keyword among other words");
+        es.addToIndex(Post.class);
+        assertThat(es, should(findIndexedAtLeast(Post.class, "body:keyword", 1))
+                .whileWaitingUntil(timeoutHasExpired(20000)));
+
+        final long executedBefore = es.getSearchesExecuted();
+        final long coalescedBefore = es.getSearchesCoalesced();
+        final ExecutorService pool = newFixedThreadPool(SEARCHERS);
+        final long deadline = System.currentTimeMillis() + 20000;
+        long searches = 0;
+        try {
+            // the bursts of identical searches are repeated until some of them overlap
+            while (es.getSearchesCoalesced() == coalescedBefore && System.currentTimeMillis() < deadline) {
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<List<IndexingResult>>> results = new ArrayList<>();
+                for (int i = 0; i < SEARCHERS; i++) {
+                    results.add(pool.submit(new Callable<List<IndexingResult>>() {
+                        @Override
+                        public List<IndexingResult> call() throws Exception {
+                            start.await();
+                            return es.search(Post.class, "body:keyword");
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<List<IndexingResult>> result : results) {
+                    final List<IndexingResult> found = result.get(20, SECONDS);
+                    assertThat(found, hasSize(1));
+                    // every caller gets its own copy, so clearing it does not affect the others
+                    found.clear();
+                }
+                searches += SEARCHERS;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(es.getSearchesCoalesced(), greaterThan(coalescedBefore));
+        assertThat(es.getSearchesExecuted() - executedBefore + es.getSearchesCoalesced() - coalescedBefore,
+                is(searches));
+    }
 
     private Post createPost(String title, String description) throws UnknownHostException {
         final Post post = new Post();
@@ -0,0 +1,52 @@
+package me.smecsia.example.service;
+
+import me.smecsia.example.model.IndexingStats;
+import me.smecsia.example.service.IndexingServiceMatcher.MatchFunction;
+import org.hamcrest.Description;
+import org.hamcrest.TypeSafeMatcher;
+
+public class IndexingStatsMatcher extends TypeSafeMatcher<ElasticSearchService> {
+
+    private final String collectionName;
+    private final String counterName;
+    private final long expected;
+    private final MatchFunction<Long, IndexingStats> counter;
+
+    private IndexingStatsMatcher(String collectionName, String counterName, long expected,
+                                 MatchFunction<Long, IndexingStats> counter) {
+        this.collectionName = collectionName;
+        this.counterName = counterName;
+        this.expected = expected;
+        this.counter = counter;
+    }
+
+    @Override
+    public void describeTo(Description description) {
+        description.appendText(String.format(
+                "Service with at least %d documents %s in collection '%s'", expected, counterName, collectionName));
+    }
+
+    @Override
+    protected boolean matchesSafely(ElasticSearchService service) {
+        final IndexingStats stats = service.getIndexingStats().get(collectionName);
+        return stats != null && counter.call(stats) >= expected;
+    }
+
+    public static IndexingStatsMatcher indexedAtLeast(String collectionName, long count) {
+        return new IndexingStatsMatcher(collectionName, "indexed", count, new MatchFunction<Long, IndexingStats>() {
+            @Override
+            public Long call(IndexingStats stats) {
+                return stats.getDocumentsIndexed();
+            }
+        });
+    }
+
+    public static IndexingStatsMatcher skippedAtLeast(String collectionName, long count) {
+        return new IndexingStatsMatcher(collectionName, "skipped", count, new MatchFunction<Long, IndexingStats>() {
+            @Override
+            public Long call(IndexingStats stats) {
+                return stats.getDocumentsSkipped();
+            }
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package me.smecsia.example.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author smecsia
+ */
+public class SingleFlightTest {
+    public static final int THREADS = 10;
+
+    @Test
+    public void testConcurrentIdenticalCallsShareExecution() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService pool = newFixedThreadPool(THREADS);
+        final List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return flight.execute("query", new Callable<Integer>() {
+                            @Override
+                            public Integer call() throws Exception {
+                                release.await();
+                                return calls.incrementAndGet();
+                            }
+                        });
+                    }
+                }));
+            }
+            while (flight.getExecutions() + flight.getCoalesced() < THREADS) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Integer> result : results) {
+                assertThat(result.get(5, SECONDS), is(1));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(calls.get(), is(1));
+        assertThat(flight.getExecutions(), is(1L));
+        assertThat(flight.getCoalesced(), is((long) THREADS - 1));
+        assertThat(flight.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testCompletedCallIsNotCached() {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> call = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertThat(flight.execute("query", call), is(1));
+        assertThat(flight.execute("query", call), is(2));
+        assertThat(flight.getCoalesced(), is(0L));
+    }
+}